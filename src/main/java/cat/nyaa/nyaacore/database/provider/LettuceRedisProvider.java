@@ -2,22 +2,58 @@ package cat.nyaa.nyaacore.database.provider;
 
 import cat.nyaa.nyaacore.database.keyvalue.KeyValueDB;
 import com.google.common.primitives.Bytes;
+import io.lettuce.core.KeyScanCursor;
+import io.lettuce.core.KeyValue;
+import io.lettuce.core.Limit;
+import io.lettuce.core.Range;
 import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisCommandInterruptedException;
+import io.lettuce.core.RedisCommandTimeoutException;
+import io.lettuce.core.RedisException;
+import io.lettuce.core.RedisFuture;
 import io.lettuce.core.RedisURI;
+import io.lettuce.core.ScanArgs;
+import io.lettuce.core.ScanCursor;
+import io.lettuce.core.ScoredValue;
+import io.lettuce.core.ValueScanCursor;
 import io.lettuce.core.api.StatefulRedisConnection;
 import io.lettuce.core.api.async.RedisAsyncCommands;
 import io.lettuce.core.api.sync.RedisCommands;
+import io.lettuce.core.codec.ByteArrayCodec;
 import io.lettuce.core.codec.RedisCodec;
 import io.lettuce.core.codec.StringCodec;
+import io.lettuce.core.output.IntegerOutput;
+import io.lettuce.core.protocol.CommandArgs;
+import io.lettuce.core.protocol.ProtocolKeyword;
 import org.apache.commons.lang.NotImplementedException;
 import org.apache.commons.lang.Validate;
 import org.bukkit.plugin.Plugin;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -27,6 +63,45 @@ public class LettuceRedisProvider implements DatabaseProvider {
 
     public static Level keysLevel = Level.FINER;
     public static Level infoLevel = Level.FINE;
+    public static long snapshotWarmup = TimeUnit.SECONDS.toMillis(30);
+    public static int namespaceScanCount = 1000;
+    public static int namespaceSampleRate = 10;
+
+    private static final int SNAPSHOT_MAGIC = 0x4e52444b;
+
+    private final Map<String, Namespace> namespaces = new ConcurrentHashMap<>();
+
+    static String escapeGlob(String pattern) {
+        StringBuilder escaped = new StringBuilder(pattern.length());
+        for (char c : pattern.toCharArray()) {
+            if (c == '*' || c == '?' || c == '[' || c == ']' || c == '\\') {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+    public Collection<Namespace> getNamespaces() {
+        return Collections.unmodifiableCollection(namespaces.values());
+    }
+
+    public Namespace getNamespace(String name) {
+        return namespaces.get(name);
+    }
+
+    /**
+     * Advance the SCAN of every connected namespace by one page. Meant to be called periodically off the main thread.
+     */
+    public void scanNamespaces() {
+        for (Namespace namespace : namespaces.values()) {
+            try {
+                namespace.scan(namespaceScanCount);
+            } catch (RedisException | CompletionException e) {
+                Logger.getLogger("redisProvider").log(Level.WARNING, "Failed to scan namespace " + namespace.getName(), e);
+            }
+        }
+    }
 
     @Override
     public <T> T get(Plugin plugin, Map<String, Object> map, Class<T> databaseType) {
@@ -59,7 +134,43 @@ public class LettuceRedisProvider implements DatabaseProvider {
                 Function<ByteBuffer, Object> dv = getDecoder(v);
                 codec = new Codec(dk, dv, ek, ev);
             }
-            return (T) new LettuceRedisDB(codec, plugin, uri, prefix, k).connect();
+            LettuceRedisDB db = new LettuceRedisDB(codec, plugin, uri, prefix, k);
+            String snapshot = (String) map.get("snapshot");
+            if (snapshot != null) {
+                File file = plugin == null ? new File(snapshot) : new File(plugin.getDataFolder(), snapshot);
+                int snapshotSize = map.get("snapshotSize") == null ? 1024 : (int) map.get("snapshotSize");
+                db.withSnapshot(file, snapshotSize);
+            }
+            long softQuota = map.get("softQuota") == null ? -1 : ((Number) map.get("softQuota")).longValue();
+            long hardQuota = map.get("hardQuota") == null ? -1 : ((Number) map.get("hardQuota")).longValue();
+            QuotaPolicy policy = map.get("quotaPolicy") == null ? QuotaPolicy.WARN : QuotaPolicy.valueOf(((String) map.get("quotaPolicy")).toUpperCase());
+            if (prefix == null) {
+                if (softQuota >= 0 || hardQuota >= 0 || policy != QuotaPolicy.WARN) {
+                    throw new IllegalArgumentException("quotas require a 'prefix', an unprefixed database is shared by every plugin using it");
+                }
+                // every unprefixed DB on the same logical database shares one entry, scanned once
+                String name = "db:" + uri.getHost() + ":" + uri.getPort() + "/" + uri.getDatabase();
+                db.namespace = new Namespace(name, null, uri, -1, -1, QuotaPolicy.WARN);
+            } else {
+                String name = (String) map.get("namespace");
+                if (name == null) {
+                    name = (plugin == null ? "anonymous" : plugin.getName()) + ":" + prefix;
+                }
+                db.namespace = new Namespace(name, prefix, uri, softQuota, hardQuota, policy);
+            }
+            if (map.get("batchWindow") != null) {
+                int batchSize = map.get("batchSize") == null ? 64 : (int) map.get("batchSize");
+                int batchWindow = (int) map.get("batchWindow");
+                Validate.isTrue(batchSize > 0, "'batchSize' must be positive");
+                Validate.isTrue(batchWindow >= 0, "'batchWindow' must not be negative");
+                db.batcher = db.new ReadBatcher(TimeUnit.MICROSECONDS.toNanos(batchWindow), batchSize);
+            }
+            if (map.get("multi") != null) {
+                db.multi = MultiValueMode.valueOf(((String) map.get("multi")).toUpperCase());
+                db.multiChunk = map.get("multiChunk") == null ? 512 : (int) map.get("multiChunk");
+                Validate.isTrue(db.multiChunk > 0, "'multiChunk' must be positive");
+            }
+            return (T) db.connect();
         } catch (ClassNotFoundException e) {
             throw new IllegalArgumentException(e);
         }
@@ -132,6 +243,12 @@ public class LettuceRedisProvider implements DatabaseProvider {
         }
     }
 
+    private static byte[] toBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
     public class LettuceRedisDB<K, V> implements KeyValueDB<K, V> {
         private final RedisCodec<K, V> codec;
         private final Plugin plugin;
@@ -140,8 +257,22 @@ public class LettuceRedisProvider implements DatabaseProvider {
         private final Class<K> klass;
         private RedisClient client;
         private StatefulRedisConnection<K, V> connection;
+        private StatefulRedisConnection<byte[], byte[]> rankingConnection;
         private RedisCommands<K, V> sync = null;
         private RedisAsyncCommands<K, V> async = null;
+        private File snapshotFile;
+        private int snapshotSize;
+        private Map<K, Boolean> hot;
+        private final Map<K, V> warm = new ConcurrentHashMap<>();
+        private long warmUntil;
+        private final LongAdder prefetchHits = new LongAdder();
+        private final LongAdder prefetchMisses = new LongAdder();
+        private final LongAdder prefetchStale = new LongAdder();
+        private Namespace namespace;
+        private MultiValueMode multi = MultiValueMode.NONE;
+        private int multiChunk;
+        private ReadBatcher batcher;
+        private final AtomicLong lastScore = new AtomicLong();
 
         LettuceRedisDB(RedisCodec<K, V> codec, Plugin plugin, RedisURI uri, String prefix, Class<K> klass) {
             this.codec = codec;
@@ -154,54 +285,216 @@ public class LettuceRedisProvider implements DatabaseProvider {
             }
         }
 
+        /**
+         * Track the {@code size} most recently used keys and persist them with their TTLs to {@code file} on close.
+         * The next connect maps the file and prefetches those keys with one MGET, so the startup burst is answered
+         * from memory instead of one round trip per key. Values are never read from the file itself.
+         */
+        LettuceRedisDB<K, V> withSnapshot(File file, int size) {
+            this.snapshotFile = file;
+            this.snapshotSize = size;
+            this.hot = Collections.synchronizedMap(new LinkedHashMap<K, Boolean>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<K, Boolean> eldest) {
+                    return size() > snapshotSize;
+                }
+            });
+            return this;
+        }
+
+        private void touch(K key, V value) {
+            if (hot == null) {
+                return;
+            }
+            if (value == null) {
+                hot.remove(key);
+            } else {
+                hot.put(key, Boolean.TRUE);
+            }
+        }
+
+        private void forget(K key) {
+            warm.remove(key);
+            touch(key, null);
+        }
+
+        /**
+         * A prefetched value is served once, then revalidated in the background; later reads of the same key go to
+         * redis. A write by another server between connect and that first read (at most {@link #snapshotWarmup}
+         * later) is still served stale once, and counted by {@link #getPrefetchStale()}.
+         */
+        private V fromSnapshot(K key) {
+            if (warm.isEmpty()) {
+                return null;
+            }
+            if (System.currentTimeMillis() > warmUntil) {
+                warm.clear();
+                return null;
+            }
+            V value = warm.remove(key);
+            if (value != null) {
+                prefetchHits.increment();
+                touch(key, value);
+                async.get(prefix == null ? key : (K) (prefix + key)).thenAccept(v -> {
+                    if (!value.equals(v)) {
+                        prefetchStale.increment();
+                    }
+                    touch(key, v);
+                });
+            }
+            return value;
+        }
+
+        /**
+         * @return reads answered from the connect-time prefetch
+         */
+        public long getPrefetchHits() {
+            return prefetchHits.sum();
+        }
+
+        /**
+         * @return snapshot keys that no longer existed in redis when they were prefetched
+         */
+        public long getPrefetchMisses() {
+            return prefetchMisses.sum();
+        }
+
+        /**
+         * @return prefetched reads found to be stale by the background revalidation
+         */
+        public long getPrefetchStale() {
+            return prefetchStale.sum();
+        }
+
         @Override
         public int size() {
             if (prefix == null) {
                 return sync.dbsize().intValue();
             }
-            List<String> keys = (List<String>) sync.keys((K) (prefix + "*"));
+            List<String> keys = (List<String>) sync.keys((K) (escapeGlob(prefix) + "*"));
             Logger.getLogger("redisProvider").log(keysLevel, "keys: (" + prefix + ") " + String.join(", ", keys) + "| fin keys: (" + prefix + ") ");
             return keys.size();
         }
 
         @Override
         public V get(K key) {
+            checkSingle();
+            V warmed = fromSnapshot(key);
+            if (warmed != null) {
+                return warmed;
+            }
+            K rawKey = key;
             if (prefix != null) {
                 key = (K) (prefix + key);
             }
-            return sync.get(key);
+            V result = batcher == null ? sync.get(key) : await(batcher.get(key));
+            touch(rawKey, result);
+            return result;
         }
 
         public CompletableFuture<V> getAsync(K key) {
+            checkSingle();
+            V warmed = fromSnapshot(key);
+            if (warmed != null) {
+                return CompletableFuture.completedFuture(warmed);
+            }
+            K rawKey = key;
             if (prefix != null) {
                 key = (K) (prefix + key);
             }
-            return async.get(key).toCompletableFuture();
+            CompletableFuture<V> result = batcher == null ? async.get(key).toCompletableFuture() : batcher.get(key);
+            return result.thenApply(v -> {
+                touch(rawKey, v);
+                return v;
+            });
+        }
+
+        private V await(CompletableFuture<V> future) {
+            try {
+                return future.get(uri.getTimeout().toNanos(), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RedisCommandInterruptedException(e);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RedisException(e.getCause());
+            } catch (TimeoutException e) {
+                throw new RedisCommandTimeoutException("Batched read timed out after " + uri.getTimeout());
+            }
+        }
+
+        /**
+         * A sorted set stored under {@code key}, for rankings kept and ordered by redis. Members are of
+         * {@code memberType}, e.g. player UUIDs in a database keyed by leaderboard name, and don't have to match the
+         * value type of this database. All rankings of a database share one extra connection.
+         */
+        public <M> RankedSet<M> ranking(K key, Class<M> memberType) {
+            return new RankedSet<>(toBytes(codec.encodeKey(fullKey(key))), memberType, rankingConnection());
+        }
+
+        private synchronized StatefulRedisConnection<byte[], byte[]> rankingConnection() {
+            if (rankingConnection == null) {
+                rankingConnection = client.connect(ByteArrayCodec.INSTANCE);
+            }
+            return rankingConnection;
+        }
+
+        /**
+         * @return the read batcher, or null if 'batchWindow' is not configured
+         */
+        public ReadBatcher getReadBatcher() {
+            return batcher;
         }
 
         @Override
         public V get(K key, Function<? super K, ? extends V> loader) {
+            checkSingle();
+            V warmed = fromSnapshot(key);
+            if (warmed != null) {
+                return warmed;
+            }
+            K rawKey = key;
             if (prefix != null) {
                 key = (K) (prefix + key);
             }
             V result = sync.get(key);
             if (result == null) {
                 result = loader.apply(key);
+                checkQuota();
                 sync.set(key, result);
             }
+            touch(rawKey, result);
             return result;
         }
 
         public CompletableFuture<V> getAsync(K key, Function<? super K, ? extends V> mappingFunction) {
+            checkSingle();
+            V warmed = fromSnapshot(key);
+            if (warmed != null) {
+                return CompletableFuture.completedFuture(warmed);
+            }
+            K rawKey = key;
             if (prefix != null) {
                 key = (K) (prefix + key);
             }
             K finalKey = key;
-            return async.get(key).thenApply(s -> s == null ? mappingFunction.apply(finalKey) : s).toCompletableFuture();
+            return async.get(key).thenApply(s -> {
+                touch(rawKey, s);
+                return s == null ? mappingFunction.apply(finalKey) : s;
+            }).toCompletableFuture();
+        }
+
+        private void checkQuota() {
+            if (namespace != null && namespace.rejectsWrites()) {
+                throw new IllegalStateException("namespace " + namespace.getName() + " is over its hard quota");
+            }
         }
 
         @Override
         public V put(K k, V v) {
+            checkSingle();
+            checkQuota();
+            warm.remove(k);
+            touch(k, v);
             if (prefix != null) {
                 k = (K) (prefix + k);
             }
@@ -209,6 +502,10 @@ public class LettuceRedisProvider implements DatabaseProvider {
         }
 
         public CompletableFuture<V> putAsync(K key, V value) {
+            checkSingle();
+            checkQuota();
+            warm.remove(key);
+            touch(key, value);
             if (prefix != null) {
                 key = (K) (prefix + key);
             }
@@ -217,18 +514,27 @@ public class LettuceRedisProvider implements DatabaseProvider {
 
         @Override
         public V remove(K key) {
+            forget(key);
             if (prefix != null) {
                 key = (K) (prefix + key);
             }
+            if (multi != MultiValueMode.NONE) {
+                sync.del(key);
+                return null;
+            }
             V val = sync.get(key);
             sync.del(key);
             return val;
         }
 
         public CompletableFuture<V> removeAsync(K key) {
+            forget(key);
             if (prefix != null) {
                 key = (K) (prefix + key);
             }
+            if (multi != MultiValueMode.NONE) {
+                return async.del(key).thenApply(n -> (V) null).toCompletableFuture();
+            }
             K finalKey = key;
             return async.get(key).thenApply((s) -> {
                 async.del(finalKey);
@@ -236,8 +542,18 @@ public class LettuceRedisProvider implements DatabaseProvider {
             }).toCompletableFuture();
         }
 
+        /**
+         * In multi-value mode, every element of {@code key}, fetched 'multiChunk' elements per round trip.
+         * Pages are read by offset, so elements removed or inserted meanwhile may shift a later page and make
+         * an element be skipped or returned twice.
+         */
         @Override
         public Collection<V> getAll(K key) {
+            if (multi != MultiValueMode.NONE) {
+                Collection<V> result = multi == MultiValueMode.SET ? new LinkedHashSet<>() : new ArrayList<>();
+                forEachElement(key, multiChunk, result::add);
+                return result;
+            }
             if (prefix != null) {
                 key = (K) (prefix + key);
             }
@@ -248,9 +564,220 @@ public class LettuceRedisProvider implements DatabaseProvider {
             if (prefix != null) {
                 key = (K) (prefix + key);
             }
+            if (multi == MultiValueMode.SET) {
+                return scanAllAsync(key, ScanCursor.INITIAL, new LinkedHashSet<>());
+            } else if (multi != MultiValueMode.NONE) {
+                return rangeAllAsync(key, 0, new ArrayList<>());
+            }
             return async.get(key).thenApply(s -> (Collection<V>) Collections.singleton(s)).toCompletableFuture();
         }
 
+        private CompletableFuture<Collection<V>> rangeAllAsync(K key, long start, Collection<V> result) {
+            RedisFuture<List<V>> page = multi == MultiValueMode.LIST
+                                                ? async.lrange(key, start, start + multiChunk - 1)
+                                                : async.zrange(key, start, start + multiChunk - 1);
+            return page.toCompletableFuture().thenCompose(values -> {
+                result.addAll(values);
+                if (values.size() < multiChunk) {
+                    return CompletableFuture.completedFuture(result);
+                }
+                return rangeAllAsync(key, start + values.size(), result);
+            });
+        }
+
+        private CompletableFuture<Collection<V>> scanAllAsync(K key, ScanCursor cursor, Collection<V> result) {
+            return async.sscan(key, cursor, ScanArgs.Builder.limit(multiChunk)).toCompletableFuture().thenCompose(page -> {
+                result.addAll(page.getValues());
+                if (page.isFinished()) {
+                    return CompletableFuture.completedFuture(result);
+                }
+                return scanAllAsync(key, page, result);
+            });
+        }
+
+        private K fullKey(K key) {
+            return prefix == null ? key : (K) (prefix + key);
+        }
+
+        private void checkMulti() {
+            if (multi == MultiValueMode.NONE) {
+                throw new UnsupportedOperationException("'multi' is not configured for this database");
+            }
+        }
+
+        private void checkSingle() {
+            if (multi != MultiValueMode.NONE) {
+                throw new UnsupportedOperationException("keys hold a " + multi + ", use the element operations");
+            }
+        }
+
+        /**
+         * Current time in milliseconds, bumped past the previous score so elements added by this server within one
+         * millisecond keep their insertion order. Elements added by different servers in the same millisecond may
+         * still tie, and ties are ordered by member.
+         */
+        private double nextScore() {
+            return lastScore.accumulateAndGet(System.currentTimeMillis(), (last, now) -> Math.max(last + 1, now));
+        }
+
+        /**
+         * Append (LIST), add (SET) or add with the insertion time as score (ZSET) one element.
+         *
+         * @return new length of a LIST, or number of elements added to a SET/ZSET
+         */
+        public long addElement(K key, V value) {
+            checkMulti();
+            checkQuota();
+            key = fullKey(key);
+            switch (multi) {
+                case LIST:
+                    return sync.rpush(key, value);
+                case SET:
+                    return sync.sadd(key, value);
+                default:
+                    return sync.zadd(key, nextScore(), value);
+            }
+        }
+
+        public CompletableFuture<Long> addElementAsync(K key, V value) {
+            checkMulti();
+            checkQuota();
+            key = fullKey(key);
+            switch (multi) {
+                case LIST:
+                    return async.rpush(key, value).toCompletableFuture();
+                case SET:
+                    return async.sadd(key, value).toCompletableFuture();
+                default:
+                    return async.zadd(key, nextScore(), value).toCompletableFuture();
+            }
+        }
+
+        public long addElement(K key, double score, V value) {
+            if (multi != MultiValueMode.ZSET) {
+                throw new UnsupportedOperationException("scores require 'multi: zset'");
+            }
+            checkQuota();
+            return sync.zadd(fullKey(key), score, value);
+        }
+
+        public CompletableFuture<Long> addElementAsync(K key, double score, V value) {
+            if (multi != MultiValueMode.ZSET) {
+                throw new UnsupportedOperationException("scores require 'multi: zset'");
+            }
+            checkQuota();
+            return async.zadd(fullKey(key), score, value).toCompletableFuture();
+        }
+
+        /**
+         * @return number of elements removed
+         */
+        public long removeElement(K key, V value) {
+            checkMulti();
+            key = fullKey(key);
+            switch (multi) {
+                case LIST:
+                    return sync.lrem(key, 0, value);
+                case SET:
+                    return sync.srem(key, value);
+                default:
+                    return sync.zrem(key, value);
+            }
+        }
+
+        public CompletableFuture<Long> removeElementAsync(K key, V value) {
+            checkMulti();
+            key = fullKey(key);
+            switch (multi) {
+                case LIST:
+                    return async.lrem(key, 0, value).toCompletableFuture();
+                case SET:
+                    return async.srem(key, value).toCompletableFuture();
+                default:
+                    return async.zrem(key, value).toCompletableFuture();
+            }
+        }
+
+        public long countElements(K key) {
+            checkMulti();
+            key = fullKey(key);
+            switch (multi) {
+                case LIST:
+                    return sync.llen(key);
+                case SET:
+                    return sync.scard(key);
+                default:
+                    return sync.zcard(key);
+            }
+        }
+
+        /**
+         * Read {@code count} elements starting at {@code start}, in list order or ascending score order.
+         * SETs are unordered and can only be walked with {@link #forEachElement(Object, int, Consumer)}.
+         */
+        public List<V> range(K key, long start, long count) {
+            checkMulti();
+            Validate.isTrue(start >= 0, "start must not be negative");
+            if (count <= 0) {
+                return Collections.emptyList();
+            }
+            key = fullKey(key);
+            switch (multi) {
+                case LIST:
+                    return sync.lrange(key, start, start + count - 1);
+                case ZSET:
+                    return sync.zrange(key, start, start + count - 1);
+                default:
+                    throw new UnsupportedOperationException("SET has no order");
+            }
+        }
+
+        public CompletableFuture<List<V>> rangeAsync(K key, long start, long count) {
+            checkMulti();
+            Validate.isTrue(start >= 0, "start must not be negative");
+            if (count <= 0) {
+                return CompletableFuture.completedFuture(Collections.emptyList());
+            }
+            key = fullKey(key);
+            switch (multi) {
+                case LIST:
+                    return async.lrange(key, start, start + count - 1).toCompletableFuture();
+                case ZSET:
+                    return async.zrange(key, start, start + count - 1).toCompletableFuture();
+                default:
+                    throw new UnsupportedOperationException("SET has no order");
+            }
+        }
+
+        /**
+         * Stream all elements of {@code key}, fetching {@code chunk} elements per round trip.
+         * A SET is walked with SSCAN and may report an element more than once if it is modified meanwhile.
+         * A LIST or ZSET is paged by offset, so an element removed or inserted before the current page meanwhile
+         * makes a later element be skipped or reported twice.
+         */
+        public void forEachElement(K key, int chunk, Consumer<? super V> consumer) {
+            checkMulti();
+            Validate.isTrue(chunk > 0, "chunk must be positive");
+            if (multi == MultiValueMode.SET) {
+                K fullKey = fullKey(key);
+                ScanCursor cursor = ScanCursor.INITIAL;
+                ValueScanCursor<V> page;
+                do {
+                    page = sync.sscan(fullKey, cursor, ScanArgs.Builder.limit(chunk));
+                    page.getValues().forEach(consumer);
+                    cursor = page;
+                } while (!page.isFinished());
+                return;
+            }
+            long start = 0;
+            List<V> page;
+            do {
+                page = range(key, start, chunk);
+                page.forEach(consumer);
+                start += page.size();
+            } while (page.size() == chunk);
+        }
+
         @Override
         public boolean containsKey(K key) {
             if (prefix != null) {
@@ -302,8 +829,12 @@ public class LettuceRedisProvider implements DatabaseProvider {
 
                 @Override
                 public void putAll(Map<? extends K, ? extends V> m) {
+                    checkSingle();
+                    checkQuota();
                     Validate.isTrue(sync.multi().equals("OK"));
                     m.forEach((key, value) -> {
+                        warm.remove(key);
+                        touch(key, value);
                         if (prefix != null) {
                             sync.set((K) (prefix + key), value);
                         } else {
@@ -337,20 +868,24 @@ public class LettuceRedisProvider implements DatabaseProvider {
 
         @Override
         public void clear() {
+            forgetAll();
             if (prefix == null) {
                 sync.flushdb();
                 return;
             }
-            List<String> keys = (List<String>) sync.keys((K) (prefix + "*"));
+            List<String> keys = (List<String>) sync.keys((K) (escapeGlob(prefix) + "*"));
             Logger.getLogger("redisProvider").log(keysLevel, "keys: (" + prefix + ") {" + String.join(", ", keys) + "} (" + prefix + ")");
-            sync.del((K[]) keys.toArray());
+            if (!keys.isEmpty()) {
+                sync.del((K[]) keys.toArray());
+            }
         }
 
         public CompletableFuture<Long> clearAsync() {
+            forgetAll();
             if (prefix == null) {
                 return async.flushdb().thenApply(s -> -1L).toCompletableFuture();
             }
-            return async.keys((K) (prefix + "*")).thenComposeAsync(keys -> async.del((K[]) keys.toArray())).toCompletableFuture();
+            return async.keys((K) (escapeGlob(prefix) + "*")).thenComposeAsync(keys -> keys.isEmpty() ? CompletableFuture.completedFuture(0L) : async.del((K[]) keys.toArray()).toCompletableFuture()).toCompletableFuture();
         }
 
         @SuppressWarnings("unchecked")
@@ -363,6 +898,25 @@ public class LettuceRedisProvider implements DatabaseProvider {
             sync = connection.sync();
             async = connection.async();
             Logger.getLogger("redisProvider").log(infoLevel, sync.info("Server"));
+            if (batcher != null) {
+                batcher.open();
+            }
+            if (namespace != null) {
+                Namespace template = namespace;
+                namespace = namespaces.compute(template.getName(), (name, existing) -> {
+                    Namespace registered = existing == null ? template : existing;
+                    registered.open(this);
+                    return registered;
+                });
+            }
+            if (snapshotFile != null) {
+                try {
+                    readSnapshot();
+                } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+                    Logger.getLogger("redisProvider").log(Level.WARNING, "Failed to read snapshot " + snapshotFile, e);
+                    warm.clear();
+                }
+            }
             return (T) this;
         }
 
@@ -371,14 +925,39 @@ public class LettuceRedisProvider implements DatabaseProvider {
             if (plugin != null) {
                 plugin.getLogger().log(Level.INFO, "Disconnecting redis server " + uri.toString());
             }
+            if (batcher != null) {
+                batcher.close();
+            }
+            if (snapshotFile != null) {
+                try {
+                    writeSnapshot();
+                } catch (IOException e) {
+                    Logger.getLogger("redisProvider").log(Level.WARNING, "Failed to write snapshot " + snapshotFile, e);
+                }
+            }
+            if (namespace != null) {
+                namespaces.computeIfPresent(namespace.getName(), (name, registered) -> {
+                    registered.disconnect(this);
+                    return registered.isOpen() ? registered : null;
+                });
+            }
             async.save();
             sync.save();
             connection.close();
+            synchronized (this) {
+                if (rankingConnection != null) {
+                    rankingConnection.close();
+                    rankingConnection = null;
+                }
+            }
             sync = null;
             async = null;
             connection = null;
             client.shutdown();
             client = null;
+            if (batcher != null) {
+                batcher.abandon();
+            }
         }
 
         @Override
@@ -389,8 +968,720 @@ public class LettuceRedisProvider implements DatabaseProvider {
         }
 
         public void flushdb() {
+            forgetAll();
             sync.flushdb();
         }
+
+        private void forgetAll() {
+            warm.clear();
+            if (hot != null) {
+                hot.clear();
+            }
+        }
+
+        private void readSnapshot() throws IOException {
+            if (!snapshotFile.isFile()) {
+                return;
+            }
+            List<K> keys = new ArrayList<>();
+            long now = System.currentTimeMillis();
+            // decode everything up front, the mapping can't be unmapped explicitly and is left to the GC
+            try (FileChannel channel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.remaining() < Integer.BYTES * 2 || buffer.getInt() != SNAPSHOT_MAGIC) {
+                    throw new IOException("Malformed snapshot header");
+                }
+                int count = buffer.getInt();
+                if (count < 0 || count > buffer.remaining() / (Long.BYTES + Integer.BYTES)) {
+                    throw new IOException("Malformed snapshot entry count " + count);
+                }
+                for (int i = 0; i < count; i++) {
+                    long expireAt = buffer.getLong();
+                    ByteBuffer key = slice(buffer);
+                    if (expireAt >= 0 && expireAt <= now) {
+                        continue;
+                    }
+                    keys.add(codec.decodeKey(key));
+                }
+            }
+            if (keys.isEmpty()) {
+                return;
+            }
+            Object[] fullKeys = new Object[keys.size()];
+            for (int i = 0; i < keys.size(); i++) {
+                fullKeys[i] = prefix == null ? keys.get(i) : prefix + keys.get(i);
+            }
+            List<KeyValue<K, V>> current = sync.mget((K[]) fullKeys);
+            for (int i = 0; i < keys.size(); i++) {
+                KeyValue<K, V> value = current.get(i);
+                if (value.hasValue()) {
+                    warm.put(keys.get(i), value.getValue());
+                    touch(keys.get(i), value.getValue());
+                } else {
+                    prefetchMisses.increment();
+                }
+            }
+            warmUntil = System.currentTimeMillis() + snapshotWarmup;
+            Logger.getLogger("redisProvider").log(infoLevel, "snapshot: (" + snapshotFile + ") prefetched " + warm.size() + " keys, " + prefetchMisses.sum() + " gone");
+        }
+
+        private ByteBuffer slice(ByteBuffer buffer) throws IOException {
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                throw new IOException("Malformed snapshot entry length " + length);
+            }
+            ByteBuffer slice = buffer.slice();
+            slice.limit(length);
+            buffer.position(buffer.position() + length);
+            return slice;
+        }
+
+        private void writeSnapshot() throws IOException {
+            List<K> keys;
+            synchronized (hot) {
+                keys = new ArrayList<>(hot.keySet());
+            }
+            if (keys.isEmpty()) {
+                Files.deleteIfExists(snapshotFile.toPath());
+                return;
+            }
+            List<RedisFuture<Long>> ttls = new ArrayList<>(keys.size());
+            for (K key : keys) {
+                ttls.add(async.pttl(prefix == null ? key : (K) (prefix + key)));
+            }
+            long now = System.currentTimeMillis();
+            List<ByteBuffer> encoded = new ArrayList<>(keys.size());
+            List<Long> expireAts = new ArrayList<>(keys.size());
+            int size = Integer.BYTES * 2;
+            for (int i = 0; i < keys.size(); i++) {
+                long ttl = ttls.get(i).toCompletableFuture().join();
+                if (ttl == -2) {
+                    continue;
+                }
+                ByteBuffer k = codec.encodeKey(keys.get(i));
+                encoded.add(k);
+                expireAts.add(ttl < 0 ? -1 : now + ttl);
+                size += Long.BYTES + Integer.BYTES + k.remaining();
+            }
+            File parent = snapshotFile.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Cannot create " + parent);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            buffer.putInt(SNAPSHOT_MAGIC).putInt(expireAts.size());
+            for (int i = 0; i < expireAts.size(); i++) {
+                ByteBuffer k = encoded.get(i);
+                buffer.putLong(expireAts.get(i)).putInt(k.remaining()).put(k);
+            }
+            buffer.flip();
+            // the previous snapshot may still be mapped by readSnapshot, so never truncate it in place
+            Path target = snapshotFile.toPath().toAbsolutePath();
+            Path temp = Files.createTempFile(target.getParent(), snapshotFile.getName(), ".tmp");
+            try {
+                try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    channel.force(true);
+                }
+                try {
+                    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+
+        /**
+         * Collects single-key reads issued within {@code window} nanoseconds, or until {@code maxSize} are pending,
+         * and sends them as one MGET.
+         * <p>
+         * A batched read is only sent when its batch is flushed, so it can reach redis after a write issued later on
+         * the same connection: {@code getAsync(k)} followed by {@code putAsync(k, v2)} may complete with {@code v2}.
+         * Unbatched commands keep the connection's issue order. Reads still queued when the database closes
+         * complete exceptionally.
+         */
+        public class ReadBatcher {
+            private final long window;
+            private final int maxSize;
+            private final Queue<PendingRead> queue = new ConcurrentLinkedQueue<>();
+            private final AtomicInteger pending = new AtomicInteger();
+            private final AtomicBoolean scheduled = new AtomicBoolean();
+            private final LongAdder batches = new LongAdder();
+            private final LongAdder reads = new LongAdder();
+            private final LongAdder waitNanos = new LongAdder();
+            private final AtomicLong maxBatch = new AtomicLong();
+            private volatile boolean closed = true;
+
+            private ReadBatcher(long window, int maxSize) {
+                this.window = window;
+                this.maxSize = maxSize;
+            }
+
+            private CompletableFuture<V> get(K key) {
+                PendingRead read = new PendingRead(key);
+                if (closed) {
+                    read.future.completeExceptionally(new RedisException("Connection is closed"));
+                    return read.future;
+                }
+                queue.add(read);
+                pending.incrementAndGet();
+                RedisClient current = client;
+                if (closed || current == null) {
+                    // raced with close(), which may already have drained the queue
+                    abandon();
+                } else if (pending.get() >= maxSize) {
+                    flush();
+                } else if (scheduled.compareAndSet(false, true)) {
+                    current.getResources().eventExecutorGroup().schedule(() -> {
+                        scheduled.set(false);
+                        if (closed) {
+                            abandon();
+                        } else {
+                            flush();
+                        }
+                    }, window, TimeUnit.NANOSECONDS);
+                }
+                return read.future;
+            }
+
+            private void open() {
+                closed = false;
+            }
+
+            /**
+             * Stop accepting reads and send the queued ones while the connection is still open.
+             */
+            private void close() {
+                closed = true;
+                flush();
+            }
+
+            private void abandon() {
+                PendingRead read;
+                while ((read = queue.poll()) != null) {
+                    pending.decrementAndGet();
+                    read.future.completeExceptionally(new RedisException("Connection is closed"));
+                }
+            }
+
+            void flush() {
+                List<PendingRead> batch;
+                do {
+                    batch = new ArrayList<>(maxSize);
+                    PendingRead read;
+                    while (batch.size() < maxSize && (read = queue.poll()) != null) {
+                        batch.add(read);
+                    }
+                    if (batch.isEmpty()) {
+                        return;
+                    }
+                    pending.addAndGet(-batch.size());
+                    send(batch);
+                } while (batch.size() == maxSize);
+            }
+
+            private void send(List<PendingRead> batch) {
+                long now = System.nanoTime();
+                Object[] keys = new Object[batch.size()];
+                for (int i = 0; i < batch.size(); i++) {
+                    keys[i] = batch.get(i).key;
+                    waitNanos.add(now - batch.get(i).enqueued);
+                }
+                RedisAsyncCommands<K, V> commands = async;
+                if (commands == null) {
+                    batch.forEach(read -> read.future.completeExceptionally(new RedisException("Connection is closed")));
+                    return;
+                }
+                batches.increment();
+                reads.add(batch.size());
+                maxBatch.accumulateAndGet(batch.size(), Math::max);
+                commands.mget((K[]) keys).whenComplete((values, e) -> {
+                    for (int i = 0; i < batch.size(); i++) {
+                        CompletableFuture<V> future = batch.get(i).future;
+                        if (e != null) {
+                            future.completeExceptionally(e);
+                        } else {
+                            KeyValue<K, V> value = values.get(i);
+                            future.complete(value.hasValue() ? value.getValue() : null);
+                        }
+                    }
+                });
+            }
+
+            public long getBatches() {
+                return batches.sum();
+            }
+
+            public long getReads() {
+                return reads.sum();
+            }
+
+            public double getAverageBatchSize() {
+                long count = batches.sum();
+                return count == 0 ? 0 : (double) reads.sum() / count;
+            }
+
+            public long getMaxBatchSize() {
+                return maxBatch.get();
+            }
+
+            /**
+             * @return mean time in nanoseconds a read waited in the queue before its MGET was sent
+             */
+            public double getAverageWaitNanos() {
+                long count = reads.sum();
+                return count == 0 ? 0 : (double) waitNanos.sum() / count;
+            }
+
+            private class PendingRead {
+                private final K key;
+                private final long enqueued = System.nanoTime();
+                private final CompletableFuture<V> future = new CompletableFuture<>();
+
+                private PendingRead(K key) {
+                    this.key = key;
+                }
+            }
+        }
+
+        /**
+         * Members ranked by descending score; rank 0 is the highest score. Members are encoded with the codec of
+         * their own type, independent of this database's value type.
+         */
+        public class RankedSet<M> {
+            private final byte[] key;
+            private final Function<Object, ByteBuffer> encoder;
+            private final Function<ByteBuffer, Object> decoder;
+            private final RedisCommands<byte[], byte[]> sync;
+            private final RedisAsyncCommands<byte[], byte[]> async;
+
+            private RankedSet(byte[] key, Class<M> memberType, StatefulRedisConnection<byte[], byte[]> connection) {
+                this.key = key;
+                this.encoder = getEncoder(memberType);
+                this.decoder = getDecoder(memberType);
+                this.sync = connection.sync();
+                this.async = connection.async();
+            }
+
+            private byte[] encode(M member) {
+                return toBytes(encoder.apply(member));
+            }
+
+            @SuppressWarnings("unchecked")
+            private M decode(byte[] member) {
+                return (M) decoder.apply(ByteBuffer.wrap(member));
+            }
+
+            private ScoredValue<M> decode(ScoredValue<byte[]> value) {
+                return ScoredValue.fromNullable(value.getScore(), decode(value.getValue()));
+            }
+
+            private List<ScoredValue<M>> decodeAll(List<ScoredValue<byte[]>> values) {
+                List<ScoredValue<M>> result = new ArrayList<>(values.size());
+                for (ScoredValue<byte[]> value : values) {
+                    result.add(decode(value));
+                }
+                return result;
+            }
+
+            /**
+             * @return the new score
+             */
+            public double increment(M member, double delta) {
+                checkQuota();
+                return sync.zincrby(key, delta, encode(member));
+            }
+
+            public CompletableFuture<Double> incrementAsync(M member, double delta) {
+                checkQuota();
+                return async.zincrby(key, delta, encode(member)).toCompletableFuture();
+            }
+
+            public void setScore(M member, double score) {
+                checkQuota();
+                sync.zadd(key, score, encode(member));
+            }
+
+            public CompletableFuture<Long> setScoreAsync(M member, double score) {
+                checkQuota();
+                return async.zadd(key, score, encode(member)).toCompletableFuture();
+            }
+
+            /**
+             * @return the score, or null if {@code member} is not ranked
+             */
+            public Double getScore(M member) {
+                return sync.zscore(key, encode(member));
+            }
+
+            public CompletableFuture<Double> getScoreAsync(M member) {
+                return async.zscore(key, encode(member)).toCompletableFuture();
+            }
+
+            /**
+             * @return the 0-based rank, or null if {@code member} is not ranked
+             */
+            public Long getRank(M member) {
+                return sync.zrevrank(key, encode(member));
+            }
+
+            public CompletableFuture<Long> getRankAsync(M member) {
+                return async.zrevrank(key, encode(member)).toCompletableFuture();
+            }
+
+            public List<ScoredValue<M>> top(int n) {
+                return range(0, n);
+            }
+
+            public CompletableFuture<List<ScoredValue<M>>> topAsync(int n) {
+                return rangeAsync(0, n);
+            }
+
+            public List<ScoredValue<M>> range(long start, long count) {
+                Validate.isTrue(start >= 0, "start must not be negative");
+                if (count <= 0) {
+                    return Collections.emptyList();
+                }
+                return decodeAll(sync.zrevrangeWithScores(key, start, start + count - 1));
+            }
+
+            public CompletableFuture<List<ScoredValue<M>>> rangeAsync(long start, long count) {
+                Validate.isTrue(start >= 0, "start must not be negative");
+                if (count <= 0) {
+                    return CompletableFuture.completedFuture(Collections.emptyList());
+                }
+                return async.zrevrangeWithScores(key, start, start + count - 1).thenApply(this::decodeAll).toCompletableFuture();
+            }
+
+            /**
+             * Stream all members from the highest score down, fetching {@code chunk} members per round trip.
+             * Pages continue from the last score seen rather than from an offset, so score changes elsewhere in the
+             * ranking don't shift the walk; a member whose own score changes meanwhile may still be missed or
+             * reported again at its new score.
+             */
+            public void forEach(int chunk, Consumer<ScoredValue<M>> consumer) {
+                Validate.isTrue(chunk > 0, "chunk must be positive");
+                Double last = null;
+                long tied = 0;
+                List<ScoredValue<byte[]>> page;
+                do {
+                    Range<Double> range = last == null ? Range.unbounded() : Range.from(Range.Boundary.unbounded(), Range.Boundary.including(last));
+                    page = sync.zrevrangebyscoreWithScores(key, range, Limit.create(tied, chunk));
+                    for (ScoredValue<byte[]> value : page) {
+                        consumer.accept(decode(value));
+                        if (last != null && value.getScore() == last) {
+                            tied++;
+                        } else {
+                            last = value.getScore();
+                            tied = 1;
+                        }
+                    }
+                } while (page.size() == chunk);
+            }
+
+            public long size() {
+                return sync.zcard(key);
+            }
+
+            public CompletableFuture<Long> sizeAsync() {
+                return async.zcard(key).toCompletableFuture();
+            }
+
+            public boolean remove(M member) {
+                return sync.zrem(key, encode(member)) > 0;
+            }
+
+            public CompletableFuture<Boolean> removeAsync(M member) {
+                return async.zrem(key, encode(member)).thenApply(n -> n > 0).toCompletableFuture();
+            }
+
+            public void clear() {
+                sync.del(key);
+            }
+
+            public CompletableFuture<Long> clearAsync() {
+                return async.del(key).toCompletableFuture();
+            }
+        }
+    }
+
+    /**
+     * How {@link LettuceRedisDB#getAll(Object)} and the element operations store values.
+     * Keys of a multi-value database hold a redis collection, so plain get/put do not apply to them.
+     */
+    public enum MultiValueMode {
+        /**
+         * One value per key, {@code getAll} returns it as a singleton
+         */
+        NONE,
+        LIST,
+        SET,
+        ZSET
+    }
+
+    public enum QuotaPolicy {
+        /**
+         * Only log when a quota is exceeded
+         */
+        WARN,
+        /**
+         * Reject writes while the hard quota is exceeded
+         */
+        REJECT,
+        /**
+         * Delete keys whose OBJECT IDLETIME falls in the idlest share of the previous scan pass until the estimate is
+         * back under the hard quota
+         */
+        EVICT
+    }
+
+    private enum NamespaceCommand implements ProtocolKeyword {
+        MEMORY;
+
+        private final byte[] bytes = name().getBytes(StandardCharsets.US_ASCII);
+
+        @Override
+        public byte[] getBytes() {
+            return bytes;
+        }
+    }
+
+    /**
+     * Key count and memory of one prefix, or of a whole logical database shared by every unprefixed
+     * {@link LettuceRedisDB} on it, estimated incrementally: each {@link #scan(int)} reads one SCAN page and samples
+     * MEMORY USAGE of every {@link #namespaceSampleRate}-th key; totals are published when the cursor wraps around.
+     * Under {@link QuotaPolicy#EVICT} the samples also record OBJECT IDLETIME, and the pass that follows an over-quota
+     * pass deletes only keys at least as idle as the share of samples that has to go.
+     */
+    public class Namespace {
+        private final String name;
+        private final String prefix;
+        private final RedisURI uri;
+        private final long softQuota;
+        private final long hardQuota;
+        private final QuotaPolicy policy;
+        private final Set<LettuceRedisDB<?, ?>> owners = new HashSet<>();
+        private StatefulRedisConnection<byte[], byte[]> connection;
+        private LettuceRedisDB<?, ?> connectionOwner;
+        private ScanCursor cursor = ScanCursor.INITIAL;
+        private long scannedKeys;
+        private long sampledKeys;
+        private long sampledBytes;
+        private List<Long> sampledIdle = new ArrayList<>();
+        private long evictBudget;
+        private long idleThreshold;
+        private volatile long keys = -1;
+        private volatile long memory = -1;
+        private volatile long evicted;
+        private volatile long lastScan;
+
+        private Namespace(String name, String prefix, RedisURI uri, long softQuota, long hardQuota, QuotaPolicy policy) {
+            this.name = name;
+            this.prefix = prefix;
+            this.uri = uri;
+            this.softQuota = softQuota;
+            this.hardQuota = hardQuota;
+            this.policy = policy;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the prefix, or null if this entry is a whole logical database
+         */
+        public String getPrefix() {
+            return prefix;
+        }
+
+        public int getDatabase() {
+            return uri.getDatabase();
+        }
+
+        /**
+         * @return key count of the last complete scan, or -1 if none finished yet
+         */
+        public long getKeys() {
+            return keys;
+        }
+
+        /**
+         * @return estimated memory in bytes of the last complete scan, or -1 if none finished yet or MEMORY USAGE is unavailable
+         */
+        public long getMemory() {
+            return memory;
+        }
+
+        public long getSoftQuota() {
+            return softQuota;
+        }
+
+        public long getHardQuota() {
+            return hardQuota;
+        }
+
+        public QuotaPolicy getPolicy() {
+            return policy;
+        }
+
+        public long getEvicted() {
+            return evicted;
+        }
+
+        public long getLastScan() {
+            return lastScan;
+        }
+
+        public boolean rejectsWrites() {
+            return policy == QuotaPolicy.REJECT && hardQuota >= 0 && memory > hardQuota;
+        }
+
+        synchronized void scan(int count) {
+            if (owners.isEmpty()) {
+                return;
+            }
+            if (connection == null) {
+                connectionOwner = owners.iterator().next();
+                connection = connectionOwner.client.connect(ByteArrayCodec.INSTANCE);
+            }
+            ScanArgs args = ScanArgs.Builder.limit(count);
+            if (prefix != null) {
+                args.match(escapeGlob(prefix) + "*");
+            }
+            KeyScanCursor<byte[]> page = connection.sync().scan(cursor, args);
+            List<byte[]> pageKeys = page.getKeys();
+            List<RedisFuture<Long>> usages = new ArrayList<>();
+            List<RedisFuture<Long>> idles = new ArrayList<>();
+            for (int i = 0; i < pageKeys.size(); i += namespaceSampleRate) {
+                CommandArgs<byte[], byte[]> usage = new CommandArgs<>(ByteArrayCodec.INSTANCE).add("USAGE").addKey(pageKeys.get(i));
+                usages.add(connection.async().dispatch(NamespaceCommand.MEMORY, new IntegerOutput<>(ByteArrayCodec.INSTANCE), usage));
+                if (policy == QuotaPolicy.EVICT) {
+                    idles.add(connection.async().objectIdletime(pageKeys.get(i)));
+                }
+            }
+            try {
+                for (RedisFuture<Long> usage : usages) {
+                    Long bytes = usage.toCompletableFuture().join();
+                    if (bytes != null) {
+                        sampledKeys++;
+                        sampledBytes += bytes;
+                    }
+                }
+            } catch (CompletionException e) {
+                // MEMORY USAGE needs redis 4.0; keep counting keys without it
+                Logger.getLogger("redisProvider").log(keysLevel, "MEMORY USAGE failed in namespace " + name, e.getCause());
+            }
+            try {
+                for (RedisFuture<Long> idle : idles) {
+                    Long seconds = idle.toCompletableFuture().join();
+                    if (seconds != null) {
+                        sampledIdle.add(seconds);
+                    }
+                }
+            } catch (CompletionException e) {
+                // OBJECT IDLETIME is refused under an LFU maxmemory-policy; without samples nothing is evicted
+                Logger.getLogger("redisProvider").log(keysLevel, "OBJECT IDLETIME failed in namespace " + name, e.getCause());
+                sampledIdle.clear();
+            }
+            scannedKeys += pageKeys.size();
+            if (evictBudget > 0 && !pageKeys.isEmpty()) {
+                scannedKeys -= evict(pageKeys);
+            }
+            if (!page.isFinished()) {
+                cursor = page;
+                return;
+            }
+            keys = scannedKeys;
+            if (sampledKeys > 0) {
+                memory = sampledBytes / sampledKeys * scannedKeys;
+            } else {
+                memory = scannedKeys == 0 ? 0 : -1;
+            }
+            lastScan = System.currentTimeMillis();
+            evictBudget = 0;
+            if (softQuota >= 0 && memory > softQuota) {
+                Logger.getLogger("redisProvider").log(Level.WARNING, "namespace " + name + " uses ~" + memory + " bytes, over its soft quota of " + softQuota);
+            }
+            if (hardQuota >= 0 && memory > hardQuota) {
+                Logger.getLogger("redisProvider").log(Level.WARNING, "namespace " + name + " uses ~" + memory + " bytes, over its hard quota of " + hardQuota + " (" + policy + ")");
+                if (policy == QuotaPolicy.EVICT && !sampledIdle.isEmpty()) {
+                    // evict the idlest share of the whole pass, not the idlest keys of whichever page comes first
+                    sampledIdle.sort(Collections.reverseOrder());
+                    double share = (double) (memory - hardQuota) / memory;
+                    int index = (int) Math.min(sampledIdle.size() - 1, Math.max(0, Math.ceil(share * sampledIdle.size()) - 1));
+                    idleThreshold = sampledIdle.get(index);
+                    evictBudget = memory - hardQuota;
+                }
+            }
+            cursor = ScanCursor.INITIAL;
+            scannedKeys = sampledKeys = sampledBytes = 0;
+            sampledIdle = new ArrayList<>();
+        }
+
+        private long evict(List<byte[]> pageKeys) {
+            long average = Math.max(1, memory / Math.max(1, keys));
+            List<RedisFuture<Long>> idles = new ArrayList<>(pageKeys.size());
+            for (byte[] key : pageKeys) {
+                idles.add(connection.async().objectIdletime(key));
+            }
+            List<Integer> order = new ArrayList<>(pageKeys.size());
+            long[] idle = new long[pageKeys.size()];
+            try {
+                for (int i = 0; i < pageKeys.size(); i++) {
+                    Long seconds = idles.get(i).toCompletableFuture().join();
+                    idle[i] = seconds == null ? -1 : seconds;
+                    if (idle[i] >= idleThreshold) {
+                        order.add(i);
+                    }
+                }
+            } catch (CompletionException e) {
+                Logger.getLogger("redisProvider").log(Level.WARNING, "OBJECT IDLETIME failed in namespace " + name + ", skipping eviction", e.getCause());
+                evictBudget = 0;
+                return 0;
+            }
+            order.sort((a, b) -> Long.compare(idle[b], idle[a]));
+            List<byte[]> victims = new ArrayList<>();
+            for (int i : order) {
+                if (evictBudget <= 0) {
+                    break;
+                }
+                victims.add(pageKeys.get(i));
+                evictBudget -= average;
+            }
+            if (victims.isEmpty()) {
+                return 0;
+            }
+            long deleted = connection.sync().del(victims.toArray(new byte[0][]));
+            evicted += deleted;
+            return deleted;
+        }
+
+        synchronized boolean isOpen() {
+            return !owners.isEmpty();
+        }
+
+        synchronized void open(LettuceRedisDB<?, ?> db) {
+            owners.add(db);
+        }
+
+        synchronized void disconnect(LettuceRedisDB<?, ?> db) {
+            owners.remove(db);
+            // the scan connection dies with the client it was opened from
+            if (connection != null && (owners.isEmpty() || connectionOwner == db)) {
+                connection.close();
+                connection = null;
+                connectionOwner = null;
+            }
+            if (owners.isEmpty()) {
+                cursor = ScanCursor.INITIAL;
+                scannedKeys = sampledKeys = sampledBytes = evictBudget = 0;
+                sampledIdle = new ArrayList<>();
+            }
+        }
     }
 
     public class Codec<K, V> implements RedisCodec<K, V> {
@@ -2,21 +2,32 @@ package cat.nyaa.nyaacore.database.provider;
 
 import cat.nyaa.nyaacore.database.DatabaseUtils;
 import org.bukkit.Bukkit;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
 import org.bukkit.plugin.java.JavaPlugin;
 
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 
 public class RedisProvider extends JavaPlugin {
+    private LettuceRedisProvider provider;
+
     @Override
     public void onEnable() {
         if(!DatabaseUtils.hasProvider("redis")){
             Bukkit.getLogger().log(Level.INFO, "Registering LettuceRedisProvider");
-            DatabaseUtils.registerProvider("redis", new LettuceRedisProvider());
+            provider = new LettuceRedisProvider();
+            DatabaseUtils.registerProvider("redis", provider);
         }
+        Bukkit.getScheduler().runTaskTimerAsynchronously(this, () -> provider.scanNamespaces(), 20L, 20L);
     }
 
     @Override
     public void onDisable() {
+        Bukkit.getScheduler().cancelTasks(this);
         if(DatabaseUtils.hasProvider("redis")){
             Bukkit.getLogger().log(Level.INFO, "Unregistering LettuceRedisProvider");
             DatabaseUtils.unregisterProvider("redis");
@@ -26,6 +37,49 @@ public class RedisProvider extends JavaPlugin {
     @Override
     public void onLoad() {
         Bukkit.getLogger().log(Level.INFO, "Registering LettuceRedisProvider");
-        DatabaseUtils.registerProvider("redis", new LettuceRedisProvider());
+        provider = new LettuceRedisProvider();
+        DatabaseUtils.registerProvider("redis", provider);
+    }
+
+    @Override
+    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+        if (args.length == 0 || !args[0].equalsIgnoreCase("namespaces")) {
+            return false;
+        }
+        // the async scan rewrites memory while we sort, so sort on a copy of it
+        List<Map.Entry<LettuceRedisProvider.Namespace, Long>> namespaces = new ArrayList<>();
+        for (LettuceRedisProvider.Namespace namespace : provider.getNamespaces()) {
+            namespaces.add(new AbstractMap.SimpleImmutableEntry<>(namespace, namespace.getMemory()));
+        }
+        namespaces.sort(Map.Entry.<LettuceRedisProvider.Namespace, Long>comparingByValue().reversed());
+        for (Map.Entry<LettuceRedisProvider.Namespace, Long> entry : namespaces) {
+            LettuceRedisProvider.Namespace namespace = entry.getKey();
+            if (args.length > 1 && !namespace.getName().startsWith(args[1])) {
+                continue;
+            }
+            if (namespace.getKeys() < 0) {
+                sender.sendMessage(namespace.getName() + ": scanning");
+                continue;
+            }
+            sender.sendMessage(String.format("%s (db %d): %d keys, ~%s, quota %s/%s %s, %d evicted",
+                    namespace.getName(), namespace.getDatabase(), namespace.getKeys(), formatBytes(entry.getValue()),
+                    formatBytes(namespace.getSoftQuota()), formatBytes(namespace.getHardQuota()), namespace.getPolicy(),
+                    namespace.getEvicted()));
+        }
+        if (namespaces.isEmpty()) {
+            sender.sendMessage("No namespace connected");
+        }
+        return true;
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 0) {
+            return "-";
+        }
+        if (bytes < 1024) {
+            return bytes + "B";
+        }
+        int exp = (int) (Math.log(bytes) / Math.log(1024));
+        return String.format("%.1f%sB", bytes / Math.pow(1024, exp), "KMGTPE".charAt(exp - 1));
     }
 }
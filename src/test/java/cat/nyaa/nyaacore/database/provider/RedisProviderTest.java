@@ -8,11 +8,21 @@ import org.junit.*;
 import org.junit.rules.ErrorCollector;
 import redis.embedded.RedisServer;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
@@ -279,6 +289,312 @@ public class RedisProviderTest {
         db2.close();
     }
 
+    @Test
+    public void canWarmStartFromSnapshot() throws IOException {
+        File snapshot = File.createTempFile("redis-snapshot", ".bin");
+        snapshot.deleteOnExit();
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("url", "redis://localhost:" + port + "/");
+        conf.put("prefix", "nyaacat:redis:test5:");
+        conf.put("snapshot", snapshot.getAbsolutePath());
+        @SuppressWarnings("unchecked") LettuceRedisProvider.LettuceRedisDB<String, String> db = (LettuceRedisProvider.LettuceRedisDB<String, String>) DatabaseUtils.get("redis", null, conf, KeyValueDB.class);
+        db.clear();
+        db.put("k", "v");
+        db.put("k2", "v2");
+        db.remove("k2");
+        db.put("k3", "v3");
+        db.put("k4", "v4");
+        db.get("loaded", k -> "l");
+        db.close();
+        Assert.assertTrue(snapshot.length() > 0);
+
+        Map<String, Object> conf2 = new HashMap<>(conf);
+        conf2.remove("snapshot");
+        @SuppressWarnings("unchecked") LettuceRedisProvider.LettuceRedisDB<String, String> other = (LettuceRedisProvider.LettuceRedisDB<String, String>) DatabaseUtils.get("redis", null, conf2, KeyValueDB.class);
+        other.put("k3", "changed");
+        other.remove("k4");
+        other.close();
+
+        //noinspection unchecked
+        db = (LettuceRedisProvider.LettuceRedisDB<String, String>) DatabaseUtils.get("redis", null, conf, KeyValueDB.class);
+        Assert.assertEquals(1, db.getPrefetchMisses());
+        Assert.assertEquals("v", db.get("k"));
+        Assert.assertEquals(1, db.getPrefetchHits());
+        Assert.assertEquals("changed", db.get("k3"));
+        Assert.assertEquals(2, db.getPrefetchHits());
+        Assert.assertEquals("l", db.get("loaded", k -> "not loaded again"));
+        Assert.assertEquals(3, db.getPrefetchHits());
+        Assert.assertNull(db.get("k4"));
+        Assert.assertNull(db.get("k2"));
+        Assert.assertEquals(3, db.getPrefetchHits());
+        Assert.assertEquals("v", db.get("k"));
+        Assert.assertEquals(3, db.getPrefetchHits());
+        Assert.assertEquals(0, db.getPrefetchStale());
+        db.close();
+    }
+
+    @Test
+    public void canIgnoreMalformedSnapshot() throws IOException {
+        File snapshot = File.createTempFile("redis-snapshot", ".bin");
+        snapshot.deleteOnExit();
+        ByteBuffer garbage = ByteBuffer.allocate(Integer.BYTES * 3 + Long.BYTES);
+        garbage.putInt(0x4e52444b).putInt(1).putLong(-1).putInt(Integer.MAX_VALUE);
+        Files.write(snapshot.toPath(), garbage.array());
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("url", "redis://localhost:" + port + "/");
+        conf.put("prefix", "nyaacat:redis:test5:");
+        conf.put("snapshot", snapshot.getAbsolutePath());
+        @SuppressWarnings("unchecked") LettuceRedisProvider.LettuceRedisDB<String, String> db = (LettuceRedisProvider.LettuceRedisDB<String, String>) DatabaseUtils.get("redis", null, conf, KeyValueDB.class);
+        db.put("k", "v");
+        Assert.assertEquals("v", db.get("k"));
+        Assert.assertEquals(0, db.getPrefetchHits());
+        db.close();
+    }
+
+    @Test
+    public void canTrackNamespace() {
+        LettuceRedisProvider provider = new LettuceRedisProvider();
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("url", "redis://localhost:" + port + "/");
+        conf.put("prefix", "nyaacat:redis:test6:");
+        conf.put("namespace", "test6");
+        @SuppressWarnings("unchecked") LettuceRedisProvider.LettuceRedisDB<String, String> db = provider.get(null, conf, LettuceRedisProvider.LettuceRedisDB.class);
+        db.clear();
+        db.put("k1", "v1");
+        db.put("k2", "v2");
+        db.put("k3", "v3");
+        LettuceRedisProvider.Namespace namespace = provider.getNamespace("test6");
+        Assert.assertNotNull(namespace);
+        for (int i = 0; i < 100 && namespace.getKeys() < 0; i++) {
+            provider.scanNamespaces();
+        }
+        Assert.assertEquals(3, namespace.getKeys());
+        db.close();
+        Assert.assertNull(provider.getNamespace("test6"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cannotEvictWithoutPrefix() {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("url", "redis://localhost:" + port + "/");
+        conf.put("hardQuota", 1024);
+        conf.put("quotaPolicy", "evict");
+        new LettuceRedisProvider().get(null, conf, LettuceRedisProvider.LettuceRedisDB.class);
+    }
+
+    @Test
+    public void canShareUnprefixedNamespace() {
+        LettuceRedisProvider provider = new LettuceRedisProvider();
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("url", "redis://localhost:" + port + "/");
+        @SuppressWarnings("unchecked") LettuceRedisProvider.LettuceRedisDB<String, String> db = provider.get(null, conf, LettuceRedisProvider.LettuceRedisDB.class);
+        @SuppressWarnings("unchecked") LettuceRedisProvider.LettuceRedisDB<String, String> db2 = provider.get(null, conf, LettuceRedisProvider.LettuceRedisDB.class);
+        Assert.assertEquals(1, provider.getNamespaces().size());
+        LettuceRedisProvider.Namespace namespace = provider.getNamespaces().iterator().next();
+        Assert.assertNull(namespace.getPrefix());
+        Assert.assertEquals("db:localhost:" + port + "/0", namespace.getName());
+        db.close();
+        Assert.assertSame(namespace, provider.getNamespace(namespace.getName()));
+        provider.scanNamespaces();
+        db2.close();
+        Assert.assertTrue(provider.getNamespaces().isEmpty());
+    }
+
+    @Test
+    public void canEvictIdleKeys() throws InterruptedException {
+        String prefix = "nyaacat:redis:test10*:";
+        String value = String.join("", Collections.nCopies(100, "x"));
+        int sampleRate = LettuceRedisProvider.namespaceSampleRate;
+        LettuceRedisProvider.namespaceSampleRate = 1;
+        try {
+            Map<String, Object> decoyConf = new HashMap<>();
+            decoyConf.put("url", "redis://localhost:" + port + "/");
+            decoyConf.put("prefix", "nyaacat:redis:test10x:");
+            @SuppressWarnings("unchecked") LettuceRedisProvider.LettuceRedisDB<String, String> decoy = (LettuceRedisProvider.LettuceRedisDB<String, String>) DatabaseUtils.get("redis", null, decoyConf, KeyValueDB.class);
+            decoy.put("decoy", value);
+
+            LettuceRedisProvider measuring = new LettuceRedisProvider();
+            Map<String, Object> conf = new HashMap<>();
+            conf.put("url", "redis://localhost:" + port + "/");
+            conf.put("prefix", prefix);
+            conf.put("namespace", "test10");
+            @SuppressWarnings("unchecked") LettuceRedisProvider.LettuceRedisDB<String, String> db = measuring.get(null, conf, LettuceRedisProvider.LettuceRedisDB.class);
+            db.clear();
+            for (int i = 0; i < 20; i++) {
+                db.put("cold" + i, value);
+            }
+            TimeUnit.SECONDS.sleep(3);
+            for (int i = 0; i < 20; i++) {
+                db.put("hot" + i, value);
+            }
+            LettuceRedisProvider.Namespace namespace = measuring.getNamespace("test10");
+            for (int i = 0; i < 100 && namespace.getKeys() < 0; i++) {
+                measuring.scanNamespaces();
+            }
+            Assert.assertEquals(40, namespace.getKeys());
+            long memory = namespace.getMemory();
+            db.close();
+            Assume.assumeTrue("MEMORY USAGE unavailable", memory > 0);
+
+            LettuceRedisProvider provider = new LettuceRedisProvider();
+            conf.put("hardQuota", memory * 3 / 4);
+            conf.put("quotaPolicy", "evict");
+            //noinspection unchecked
+            db = provider.get(null, conf, LettuceRedisProvider.LettuceRedisDB.class);
+            namespace = provider.getNamespace("test10");
+            for (int i = 0; i < 100 && namespace.getKeys() < 0; i++) {
+                provider.scanNamespaces();
+            }
+            for (int i = 0; i < 100 && namespace.getEvicted() == 0; i++) {
+                provider.scanNamespaces();
+            }
+            Assert.assertTrue(namespace.getEvicted() > 0);
+            for (int i = 0; i < 20; i++) {
+                Assert.assertTrue(db.containsKey("hot" + i));
+            }
+            int cold = 0;
+            for (int i = 0; i < 20; i++) {
+                cold += db.containsKey("cold" + i) ? 1 : 0;
+            }
+            Assert.assertEquals(20 - namespace.getEvicted(), cold);
+            Assert.assertTrue(decoy.containsKey("decoy"));
+            db.clear();
+            db.close();
+            decoy.remove("decoy");
+            decoy.close();
+        } finally {
+            LettuceRedisProvider.namespaceSampleRate = sampleRate;
+        }
+    }
+
+    @Test
+    public void canRwMultiValue() {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("url", "redis://localhost:" + port + "/");
+        conf.put("prefix", "nyaacat:redis:test7:");
+        conf.put("multi", "list");
+        conf.put("multiChunk", 100);
+        @SuppressWarnings("unchecked") LettuceRedisProvider.LettuceRedisDB<String, String> db = (LettuceRedisProvider.LettuceRedisDB<String, String>) DatabaseUtils.get("redis", null, conf, KeyValueDB.class);
+        db.clear();
+        for (int i = 0; i < 1000; i++) {
+            db.addElement("mail", "m" + i);
+        }
+        Assert.assertEquals(1000, db.countElements("mail"));
+        Assert.assertEquals(Arrays.asList("m10", "m11"), db.range("mail", 10, 2));
+        Assert.assertTrue(db.range("mail", 0, 0).isEmpty());
+        try {
+            db.put("mail", "overwrite");
+            Assert.fail();
+        } catch (UnsupportedOperationException ignored) {
+        }
+        Assert.assertEquals(1000, db.countElements("mail"));
+        Assert.assertEquals(1, db.removeElement("mail", "m0"));
+        Collection<String> all = db.getAll("mail");
+        Assert.assertEquals(999, all.size());
+        Assert.assertEquals("m1", all.iterator().next());
+        Assert.assertEquals(999, db.getAllAsync("mail").join().size());
+        db.remove("mail");
+        Assert.assertEquals(0, db.countElements("mail"));
+        db.close();
+    }
+
+    @Test
+    public void canBatchReads() {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("url", "redis://localhost:" + port + "/");
+        conf.put("prefix", "nyaacat:redis:test8:");
+        conf.put("batchWindow", 1000);
+        conf.put("batchSize", 16);
+        @SuppressWarnings("unchecked") LettuceRedisProvider.LettuceRedisDB<String, String> db = (LettuceRedisProvider.LettuceRedisDB<String, String>) DatabaseUtils.get("redis", null, conf, KeyValueDB.class);
+        db.clear();
+        for (int i = 0; i < 100; i++) {
+            db.put("k" + i, "v" + i);
+        }
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            futures.add(db.getAsync("k" + i));
+        }
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals("v" + i, futures.get(i).join());
+        }
+        Assert.assertEquals("v1", db.get("k1"));
+        Assert.assertNull(db.get("not exist"));
+        LettuceRedisProvider.LettuceRedisDB.ReadBatcher batcher = db.getReadBatcher();
+        Assert.assertEquals(102, batcher.getReads());
+        Assert.assertTrue(batcher.getBatches() < 102);
+        Assert.assertEquals(16, batcher.getMaxBatchSize());
+        db.close();
+        Assert.assertTrue(db.getAsync("k1").isCompletedExceptionally());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cannotBatchWithZeroSize() {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("url", "redis://localhost:" + port + "/");
+        conf.put("batchWindow", 1000);
+        conf.put("batchSize", 0);
+        new LettuceRedisProvider().get(null, conf, LettuceRedisProvider.LettuceRedisDB.class);
+    }
+
+    @Test
+    public void canRank() {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("url", "redis://localhost:" + port + "/");
+        conf.put("prefix", "nyaacat:redis:test9:");
+        @SuppressWarnings("unchecked") LettuceRedisProvider.LettuceRedisDB<String, String> db = (LettuceRedisProvider.LettuceRedisDB<String, String>) DatabaseUtils.get("redis", null, conf, KeyValueDB.class);
+        db.clear();
+        LettuceRedisProvider.LettuceRedisDB<String, String>.RankedSet<String> kills = db.ranking("kills", String.class);
+        for (int i = 0; i < 100; i++) {
+            kills.setScore("p" + i, i);
+        }
+        Assert.assertEquals(100, kills.increment("p0", 100), 0);
+        Assert.assertEquals(0L, (long) kills.getRank("p0"));
+        Assert.assertEquals(1L, (long) kills.getRank("p99"));
+        Assert.assertNull(kills.getRank("nobody"));
+        Assert.assertEquals("p98", kills.top(3).get(2).getValue());
+        Assert.assertEquals("p97", kills.range(3, 2).get(0).getValue());
+        Assert.assertTrue(kills.top(0).isEmpty());
+        for (int i = 0; i < 20; i++) {
+            kills.setScore("tie" + i, 50);
+        }
+        List<String> all = new ArrayList<>();
+        kills.forEach(16, v -> all.add(v.getValue()));
+        Assert.assertEquals(120, all.size());
+        Assert.assertEquals(120, new HashSet<>(all).size());
+        Assert.assertEquals("p1", all.get(119));
+        Assert.assertEquals(100, kills.getScoreAsync("p0").join(), 0);
+        Assert.assertTrue(kills.removeAsync("p0").join());
+        Assert.assertEquals(119, kills.size());
+        Assert.assertEquals(119L, (long) kills.sizeAsync().join());
+        db.close();
+    }
+
+    @Test
+    public void canRankUuids() {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("url", "redis://localhost:" + port + "/");
+        conf.put("prefix", "nyaacat:redis:test11:");
+        conf.put("value", "java.lang.Long");
+        @SuppressWarnings("unchecked") LettuceRedisProvider.LettuceRedisDB<String, Long> db = (LettuceRedisProvider.LettuceRedisDB<String, Long>) DatabaseUtils.get("redis", null, conf, KeyValueDB.class);
+        db.clear();
+        LettuceRedisProvider.LettuceRedisDB<String, Long>.RankedSet<UUID> deaths = db.ranking("deaths", UUID.class);
+        List<UUID> players = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            UUID player = UUID.randomUUID();
+            players.add(player);
+            deaths.setScoreAsync(player, i).join();
+        }
+        db.put("total", 45L);
+        Assert.assertEquals(players.get(9), deaths.top(1).get(0).getValue());
+        Assert.assertEquals(9L, (long) deaths.getRank(players.get(0)));
+        Assert.assertEquals(5, deaths.incrementAsync(players.get(3), 2).join(), 0);
+        List<UUID> all = new ArrayList<>();
+        deaths.forEach(3, v -> all.add(v.getValue()));
+        Assert.assertEquals(new HashSet<>(players), new HashSet<>(all));
+        Assert.assertEquals(45L, (long) db.get("total"));
+        db.close();
+    }
+
     @AfterClass
     public static void down() {
         if (redisServer != null) {